@@ -9,6 +9,9 @@ import games.play4ever.retrodev.util.FileUtil;
 import java.awt.*;
 import java.awt.event.KeyEvent;
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.Arrays;
 
 /**
@@ -33,6 +36,24 @@ public class GfaBasicWrapper {
      * The directory where the GFA files are compiled.
      */
     private static File buildDirectory = new File("./build");
+    /**
+     * Maximum time to wait for the emulator to write a file into the build folder.
+     */
+    private static final long FILE_WRITE_TIMEOUT_MILLIS = 60000;
+    /**
+     * Estimated time the GFA BASIC editor needs to merge each KB of LST source, on top of
+     * a minimum of {@link #MERGE_MIN_WAIT_MILLIS} (see {@link #waitForMerge(File)}).
+     */
+    private static final long MERGE_WAIT_MILLIS_PER_KB = 100;
+    private static final long MERGE_MIN_WAIT_MILLIS = 500;
+    /**
+     * How long the length of a file must remain unchanged until it's considered completely written.
+     */
+    private static final long FILE_STABLE_MILLIS = 100;
+    /**
+     * Longer stability window for GFA files which are about to be cached.
+     */
+    private static final long GFA_FILE_STABLE_MILLIS = 1000;
 
     static {
         try {
@@ -71,6 +92,19 @@ public class GfaBasicWrapper {
      * @param instance The instance configuration to use for the run.
      */
     public static void runGfaProgram(File lstSourceToRun, HatariInstance instance) {
+        runGfaProgram(lstSourceToRun, instance, false);
+    }
+
+    /**
+     * Starts the Hatari emulator, opens the GFA BASIC editor and then executes the
+     * given GFA BASIC program directly in the GFA editor (interpreted).
+     *
+     * @param lstSourceToRun The ASCII source file.
+     * @param instance The instance configuration to use for the run.
+     * @param slimSource If true, comments, whitespace and unused procedures are removed before
+     *                   the source is merged (see {@link SourceSlimmer}).
+     */
+    public static void runGfaProgram(File lstSourceToRun, HatariInstance instance, boolean slimSource) {
 
 
         try {
@@ -97,11 +131,8 @@ public class GfaBasicWrapper {
             System.out.println(">> Clean up build folder...");
             new File(runtimeBuildFolder, "SOURCE.LST").delete();
 
-            System.out.println(">> Copy runtime build folder...");
-            File targetFile = new File(runtimeBuildFolder, "SOURCE.LST");
-            FileUtil.copyFileTo(lstSourceToRun, targetFile);
-            System.out.println(">> Fix CRLF in source file...");
-            SourceUtil.fixCrlfBytes(targetFile);
+            File sourceLst = new File(runtimeBuildFolder, "SOURCE.LST");
+            copySourceToBuildFolder(lstSourceToRun, sourceLst, slimSource);
 
             // *****************************************************************************************
             // Step 1: Start GFA BASIC Editor to load text file and save as ".GFA" file
@@ -129,8 +160,7 @@ public class GfaBasicWrapper {
                     KeyEvent.VK_PERIOD, KeyEvent.VK_L, KeyEvent.VK_S, KeyEvent.VK_T,
                     KeyEvent.VK_ENTER);
 
-            // Wait a little to give the emulator time to finish loading the LST file
-            Thread.sleep(500);
+            waitForMerge(sourceLst);
 
             // Type Shift + F10 to run the program
             pressKeysTogether(robot, emulatorWindow.getHWND(), KeyEvent.VK_SHIFT, KeyEvent.VK_F10);
@@ -144,6 +174,99 @@ public class GfaBasicWrapper {
 
     }
 
+    /**
+     * Starts the Hatari emulator and executes the given GFA BASIC program with the run-only
+     * interpreter "GFABASRO.PRG", without ever showing the GFA BASIC editor. The source is
+     * converted into a ".GFA" file once (in a separate, fast emulator instance running the
+     * editor), and the result is cached in the build directory, one entry per source file,
+     * together with the hash of the LST file as it was merged (i.e. after slimming and CRLF
+     * fixing, so toggling "slimSource" invalidates the entry too). Repeated runs of an
+     * unchanged source skip the conversion entirely.
+     *
+     * @param lstSourceToRun The ASCII source file.
+     * @param instance The instance configuration to use for the run.
+     * @param slimSource If true, comments, whitespace and unused procedures are removed before
+     *                   the source is converted (see {@link SourceSlimmer}).
+     * @param refreshCache If true, the cached ".GFA" file is ignored and the source is converted again.
+     */
+    public static void runGfaProgramFast(File lstSourceToRun, HatariInstance instance, boolean slimSource, boolean refreshCache) {
+
+        try {
+            System.out.println(">> Start emulator with LST file to execute in GFA run-only interpreter: " + lstSourceToRun.getAbsolutePath());
+            File runtimeBuildFolder = getOrCreateRuntimeBuildFolder();
+            System.out.println(">> Runtime build folder: " + runtimeBuildFolder.getAbsolutePath() + " / exists: " + runtimeBuildFolder.exists());
+
+            System.out.println(">> Clean up build folder...");
+            File sourceLst = new File(runtimeBuildFolder, "SOURCE.LST");
+            sourceLst.delete();
+            new File(runtimeBuildFolder, "SOURCE.BAK").delete();
+            File sourceGfa = new File(runtimeBuildFolder, "SOURCE.GFA");
+            sourceGfa.delete();
+
+            copySourceToBuildFolder(lstSourceToRun, sourceLst, slimSource);
+
+            File cachedGfa = getCachedGfaFile(lstSourceToRun);
+            File cachedHash = getCachedHashFile(lstSourceToRun);
+            String sourceHash = SourceUtil.getSourceHash(sourceLst);
+            if (!refreshCache && cachedGfa.exists() && cachedHash.exists()
+                    && new String(Files.readAllBytes(cachedHash.toPath())).trim().equals(sourceHash)) {
+                System.out.println(">> Use cached GFA file: " + cachedGfa.getAbsolutePath());
+            } else {
+                System.out.println(">> No cached GFA file for this source, convert source in GFA editor...");
+                // Invalidate the entry first, so that a failed conversion can never be reused
+                cachedHash.delete();
+                cachedGfa.delete();
+                HatariInstance building = createBuildingInstance();
+                try {
+                    DesktopWindow emulatorWindow = HatariWrapper.startEmulator(building,
+                            null,
+                            runtimeBuildFolder);
+                    // Wait a little to give TOS desktop time to become responsive
+                    Thread.sleep(1500);
+                    if(emulatorWindow == null) {
+                        emulatorWindow = new DummyDesktopWindow();
+                    }
+                    convertLstToGfa(emulatorWindow, sourceLst, sourceGfa);
+                } finally {
+                    HatariWrapper.stopEmulator(building);
+                }
+                FileUtil.copyFileTo(sourceGfa, cachedGfa);
+                Files.write(cachedHash.toPath(), sourceHash.getBytes());
+                System.out.println(">> Cached GFA file: " + cachedGfa.getAbsolutePath());
+            }
+            sourceGfa.delete();
+            FileUtil.copyFileTo(cachedGfa, sourceGfa);
+
+            // Let Hatari autostart the run-only interpreter, which then asks for the GFA file to run
+            DesktopWindow emulatorWindow = HatariWrapper.startEmulator(instance,
+                    new File(runtimeBuildFolder, "GFABASRO.PRG"),
+                    runtimeBuildFolder);
+
+            Thread.sleep(500);
+            if(emulatorWindow == null) {
+                emulatorWindow = new DummyDesktopWindow();
+            }
+            // Press SPACE to speed up start
+            pressKeys(robot, emulatorWindow.getHWND(), KeyEvent.VK_SPACE);
+            // Wait a little to give TOS time to boot and show the file selector of GFABASRO.PRG
+            Thread.sleep(10000);
+
+            clearInputFieldWithBackspaces(emulatorWindow);
+
+            // Type "SOURCE.GFA"
+            pressKeys(robot, emulatorWindow.getHWND(),
+                    KeyEvent.VK_S, KeyEvent.VK_O, KeyEvent.VK_U, KeyEvent.VK_R, KeyEvent.VK_C, KeyEvent.VK_E,
+                    KeyEvent.VK_PERIOD, KeyEvent.VK_G, KeyEvent.VK_F, KeyEvent.VK_A,
+                    KeyEvent.VK_ENTER);
+
+            System.out.println(">> Program started...");
+
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            throw new RuntimeException("Failed to send command to emulator: " + ex, ex);
+        }
+    }
+
     /**
      * Starts the Hatari emulator and then does the following:
      * <ul>
@@ -160,18 +283,19 @@ public class GfaBasicWrapper {
      * @param lstSourceToConvert The ASCII source file.
      */
     public static void compileGfaProgram(File lstSourceToConvert) {
+        compileGfaProgram(lstSourceToConvert, false);
+    }
 
-        HatariInstance building = new HatariInstance("building",
-                true,
-                true,
-                true,
-                true,
-                false,
-                true,
-                MachineType.ste,
-                TOS.tos206,
-                ScreenMode.high,
-                Memory.mb4);
+    /**
+     * Same as {@link #compileGfaProgram(File)}, but optionally slims the source before it is
+     * copied into the build folder (see {@link SourceSlimmer}).
+     *
+     * @param lstSourceToConvert The ASCII source file.
+     * @param slimSource If true, comments, whitespace and unused procedures are removed first.
+     */
+    public static void compileGfaProgram(File lstSourceToConvert, boolean slimSource) {
+
+        HatariInstance building = createBuildingInstance();
 
         try {
             System.out.println(">> Start emulator with LST file to convert in GFA editor: " + lstSourceToConvert.getAbsolutePath());
@@ -197,54 +321,13 @@ public class GfaBasicWrapper {
             File testPrg = new File(runtimeBuildFolder, "TEST.PRG");
             testPrg.delete();
 
-            System.out.println(">> Copy runtime build folder...");
-            File targetFile = new File(runtimeBuildFolder, "SOURCE.LST");
-            FileUtil.copyFileTo(lstSourceToConvert, targetFile);
-            System.out.println(">> Fix CRLF in source file...");
-            SourceUtil.fixCrlfBytes(targetFile);
+            copySourceToBuildFolder(lstSourceToConvert, new File(runtimeBuildFolder, "SOURCE.LST"), slimSource);
 
             // *****************************************************************************************
             // Step 1: Start GFA BASIC Editor to load text file and save as ".GFA" file
             // *****************************************************************************************
 
-            // Type "O" to open a file
-            pressKeys(robot, emulatorWindow.getHWND(), KeyEvent.VK_O);
-            clearInputFieldWithBackspaces(emulatorWindow);
-
-            // Type "GFABASIC.PRG" "ENTER" to open the GFA BASIC editor
-            pressKeys(robot, emulatorWindow.getHWND(),
-                    KeyEvent.VK_G, KeyEvent.VK_F, KeyEvent.VK_A, KeyEvent.VK_B, KeyEvent.VK_A, KeyEvent.VK_S, KeyEvent.VK_I, KeyEvent.VK_C,
-                    KeyEvent.VK_PERIOD, KeyEvent.VK_P, KeyEvent.VK_R, KeyEvent.VK_G, KeyEvent.VK_ENTER);
-
-            // Wait a little to give the emulator time to finish loading the GFA BASIC editor
-            Thread.sleep(500);
-
-            // Type F2 to open "Merge" screen
-            pressKeys(robot, emulatorWindow.getHWND(), KeyEvent.VK_F2);
-            clearInputFieldWithBackspaces(emulatorWindow);
-
-            // Type "SOURCE.LST"
-            pressKeys(robot, emulatorWindow.getHWND(),
-                    KeyEvent.VK_S, KeyEvent.VK_O, KeyEvent.VK_U, KeyEvent.VK_R, KeyEvent.VK_C, KeyEvent.VK_E,
-                    KeyEvent.VK_PERIOD, KeyEvent.VK_L, KeyEvent.VK_S, KeyEvent.VK_T,
-                    KeyEvent.VK_ENTER);
-
-            // Wait a little to give the emulator time to finish loading the LST file
-            waitForFileToBeWritten(sourceGfa);
-//            Thread.sleep(500);
-
-            // Type Shift + F1 to open "Save" screen
-            pressKeysTogether(robot, emulatorWindow.getHWND(), KeyEvent.VK_SHIFT, KeyEvent.VK_F1);
-
-            // Type "Enter" to confirm and save as GFA file
-            pressKeys(robot, emulatorWindow.getHWND(), KeyEvent.VK_ENTER);
-
-            // Wait a second before quitting the GFA editor, in order for the GFA file to be saved
-            Thread.sleep(1000);
-
-            // Quit the GFA BASIC editor
-            pressKeysTogether(robot, emulatorWindow.getHWND(), KeyEvent.VK_SHIFT, KeyEvent.VK_F3);
-            pressKeys(robot, emulatorWindow.getHWND(), KeyEvent.VK_ENTER);
+            convertLstToGfa(emulatorWindow, new File(runtimeBuildFolder, "SOURCE.LST"), sourceGfa);
 
             // *****************************************************************************************
             // Step 2: Start GFA Compiler Menu and run compiler and linker
@@ -278,14 +361,13 @@ public class GfaBasicWrapper {
             pressKeysTogether(robot, emulatorWindow.getHWND(), KeyEvent.VK_CONTROL, KeyEvent.VK_C);
 
             // Wait a little to make sure the compiler has completed its work.
-            waitForFileToBeWritten(testPrg);
-//            Thread.sleep(2000);
+            Thread.sleep(2000);
 
             // Link
             pressKeysTogether(robot, emulatorWindow.getHWND(), KeyEvent.VK_CONTROL, KeyEvent.VK_L);
 
-            // Wait a little to make sure the linker has completed its work.
-            Thread.sleep(2000);
+            // Wait for the linker to write the program file
+            waitForFileToBeWritten(testPrg);
 
             System.out.println(">> Build successful, compiled PRG file created: " + testPrg.getAbsolutePath());
 
@@ -297,12 +379,170 @@ public class GfaBasicWrapper {
         }
     }
 
+    /**
+     * Copies the given source file into the build folder and makes sure it uses CRLF line endings.
+     *
+     * @param lstSource  The ASCII source file.
+     * @param targetFile The source file in the build folder.
+     * @param slimSource If true, a slimmed version of the source is written instead of a plain copy.
+     */
+    private static void copySourceToBuildFolder(File lstSource, File targetFile, boolean slimSource) {
+        if (slimSource) {
+            System.out.println(">> Slim source into runtime build folder...");
+            SourceSlimmer.slimSource(lstSource, targetFile);
+            System.out.println(">> Line map written to: " + SourceSlimmer.getLineMapFile(targetFile).getAbsolutePath());
+        } else {
+            // Remove the line map of an earlier slimmed run, it does not match this source
+            SourceSlimmer.getLineMapFile(targetFile).delete();
+            System.out.println(">> Copy runtime build folder...");
+            FileUtil.copyFileTo(lstSource, targetFile);
+        }
+        System.out.println(">> Fix CRLF in source file...");
+        SourceUtil.fixCrlfBytes(targetFile);
+    }
+
+    /**
+     * Opens the GFA BASIC editor from the TOS desktop, merges "SOURCE.LST", saves it as
+     * "SOURCE.GFA" and quits the editor again, returning to the TOS desktop.
+     *
+     * @param emulatorWindow The emulator window, showing the TOS desktop.
+     * @param sourceLst The "SOURCE.LST" file in the build folder.
+     * @param sourceGfa The "SOURCE.GFA" file in the build folder (must not exist yet).
+     * @throws Exception If the key presses could not be sent, or the GFA file was not written.
+     */
+    private static void convertLstToGfa(DesktopWindow emulatorWindow, File sourceLst, File sourceGfa) throws Exception {
+        // Type "O" to open a file
+        pressKeys(robot, emulatorWindow.getHWND(), KeyEvent.VK_O);
+        clearInputFieldWithBackspaces(emulatorWindow);
+
+        // Type "GFABASIC.PRG" "ENTER" to open the GFA BASIC editor
+        pressKeys(robot, emulatorWindow.getHWND(),
+                KeyEvent.VK_G, KeyEvent.VK_F, KeyEvent.VK_A, KeyEvent.VK_B, KeyEvent.VK_A, KeyEvent.VK_S, KeyEvent.VK_I, KeyEvent.VK_C,
+                KeyEvent.VK_PERIOD, KeyEvent.VK_P, KeyEvent.VK_R, KeyEvent.VK_G, KeyEvent.VK_ENTER);
+
+        // Wait a little to give the emulator time to finish loading the GFA BASIC editor
+        Thread.sleep(500);
+
+        // Type F2 to open "Merge" screen
+        pressKeys(robot, emulatorWindow.getHWND(), KeyEvent.VK_F2);
+        clearInputFieldWithBackspaces(emulatorWindow);
+
+        // Type "SOURCE.LST"
+        pressKeys(robot, emulatorWindow.getHWND(),
+                KeyEvent.VK_S, KeyEvent.VK_O, KeyEvent.VK_U, KeyEvent.VK_R, KeyEvent.VK_C, KeyEvent.VK_E,
+                KeyEvent.VK_PERIOD, KeyEvent.VK_L, KeyEvent.VK_S, KeyEvent.VK_T,
+                KeyEvent.VK_ENTER);
+
+        waitForMerge(sourceLst);
+
+        // Type Shift + F1 to open "Save" screen
+        pressKeysTogether(robot, emulatorWindow.getHWND(), KeyEvent.VK_SHIFT, KeyEvent.VK_F1);
+
+        // Type "Enter" to confirm and save as GFA file
+        pressKeys(robot, emulatorWindow.getHWND(), KeyEvent.VK_ENTER);
+
+        // Wait for the GFA file to be saved before quitting the GFA editor
+        waitForFileToBeWritten(sourceGfa);
+
+        // Quit the GFA BASIC editor
+        pressKeysTogether(robot, emulatorWindow.getHWND(), KeyEvent.VK_SHIFT, KeyEvent.VK_F3);
+        pressKeys(robot, emulatorWindow.getHWND(), KeyEvent.VK_ENTER);
+
+        // The editor has closed the file now; make sure it is complete before anyone relies on it
+        waitForFileToBeWritten(sourceGfa, GFA_FILE_STABLE_MILLIS);
+        if (!SourceUtil.isGfaFile(sourceGfa)) {
+            throw new IllegalStateException("Saved file is not a valid GFA file: " + sourceGfa.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Waits for the GFA BASIC editor to finish merging the given LST file. The merge writes
+     * nothing to disk, so its end can't be observed from the host; the wait time is estimated
+     * from the size of the source instead.
+     *
+     * @param sourceLst The "SOURCE.LST" file in the build folder.
+     * @throws InterruptedException If the wait was interrupted.
+     */
+    private static void waitForMerge(File sourceLst) throws InterruptedException {
+        Thread.sleep(MERGE_MIN_WAIT_MILLIS + sourceLst.length() * MERGE_WAIT_MILLIS_PER_KB / 1024);
+    }
+
+    /**
+     * Returns the cached ".GFA" file for the given source. There is only one entry per source
+     * file (identified by its canonical path), so the cache does not grow while the source is
+     * being edited, and sources with the same name in different directories don't evict each other.
+     *
+     * @param lstSource The original ASCII source file.
+     * @return The cache file (which may not exist yet).
+     */
+    private static File getCachedGfaFile(File lstSource) throws IOException {
+        return new File(getCacheFolder(), getCacheEntryName(lstSource) + ".GFA");
+    }
+
+    /**
+     * Returns the file holding the hash of the merged LST file the cached ".GFA" file was
+     * converted from.
+     *
+     * @param lstSource The original ASCII source file.
+     * @return The hash file (which may not exist yet).
+     */
+    private static File getCachedHashFile(File lstSource) throws IOException {
+        return new File(getCacheFolder(), getCacheEntryName(lstSource) + ".SHA");
+    }
+
+    private static File getCacheFolder() {
+        File cacheFolder = new File(buildDirectory, "gfacache");
+        cacheFolder.mkdirs();
+        return cacheFolder;
+    }
+
+    /**
+     * @param lstSource The original ASCII source file.
+     * @return The base name of the source plus a short hash of its canonical path, e.g. "MAIN_1a2b3c4d".
+     */
+    private static String getCacheEntryName(File lstSource) throws IOException {
+        String name = lstSource.getName();
+        int dot = name.lastIndexOf('.');
+        String baseName = dot > 0 ? name.substring(0, dot) : name;
+        String pathHash = SourceUtil.getHash(lstSource.getCanonicalPath().getBytes(StandardCharsets.UTF_8));
+        return baseName + "_" + pathHash.substring(0, 8);
+    }
+
+    private static HatariInstance createBuildingInstance() {
+        return new HatariInstance("building",
+                true,
+                true,
+                true,
+                true,
+                false,
+                true,
+                MachineType.ste,
+                TOS.tos206,
+                ScreenMode.high,
+                Memory.mb4);
+    }
+
     private static void waitForFileToBeWritten(File file) throws Exception {
+        waitForFileToBeWritten(file, FILE_STABLE_MILLIS);
+    }
+
+    /**
+     * Waits until the given file exists and its length has stopped changing.
+     *
+     * @param file The file to wait for.
+     * @param stableMillis How long the length must remain unchanged.
+     * @throws Exception If the file was not written within {@link #FILE_WRITE_TIMEOUT_MILLIS}.
+     */
+    private static void waitForFileToBeWritten(File file, long stableMillis) throws Exception {
+        long endTime = System.currentTimeMillis() + FILE_WRITE_TIMEOUT_MILLIS;
         int remainsSameCounter = 0;
-        while(remainsSameCounter == 5) {
+        while(remainsSameCounter < stableMillis / 20) {
+            if(System.currentTimeMillis() > endTime) {
+                throw new IllegalStateException("File was not written in time: " + file.getAbsolutePath());
+            }
             long length = file.length();
             Thread.sleep(20);
-            if(file.length() == length) {
+            if(length > 0 && file.length() == length) {
                 remainsSameCounter ++;
             } else {
                 remainsSameCounter = 0;
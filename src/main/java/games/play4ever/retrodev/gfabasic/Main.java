@@ -24,9 +24,12 @@ public class Main {
     private static String ARG_SOURCEFILE_PATH = "-s";
     private static String ARG_GUI = "-gui";
     private static String ARG_TASK = "-task";
+    private static String ARG_SLIM = "-slim";
+    private static String ARG_NOCACHE = "-nocache";
 
     private static String TASK_COMPILE = "compile";
     private static String TASK_RUN = "run";
+    private static String TASK_FAST_RUN = "fastrun";
 
     public static void main(String[] args) throws Exception {
 
@@ -42,7 +45,7 @@ public class Main {
                 showGUI();
             } else if(params.containsKey(ARG_BUILDDIR_PATH) && params.containsKey(ARG_SOURCEFILE_PATH)) {
                 if(!params.containsKey(ARG_TASK)) {
-                    System.err.println("ERROR: Need to specify '-task' argument, either 'run' or 'compile'.");
+                    System.err.println("ERROR: Need to specify '-task' argument, either 'run', 'fastrun' or 'compile'.");
                     printUsage();
                     System.exit(-1);
                 }
@@ -61,11 +64,13 @@ public class Main {
                     task = params.get(ARG_TASK);
                 }
 
-                if(!(task.equals(TASK_RUN) || task.equals(TASK_COMPILE))) {
-                    System.err.println("ERROR: '-task' argument '" + task + "' must be either 'run' or 'compile'.");
+                if(!(task.equals(TASK_RUN) || task.equals(TASK_FAST_RUN) || task.equals(TASK_COMPILE))) {
+                    System.err.println("ERROR: '-task' argument '" + task + "' must be either 'run', 'fastrun' or 'compile'.");
                     printUsage();
                     System.exit(-1);
                 }
+                validateBooleanArgument(params, ARG_SLIM);
+                validateBooleanArgument(params, ARG_NOCACHE);
                 if (buildDirectory != null && sourceFile != null) {
                     if(!sourceFile.exists() || !sourceFile.isFile() && !sourceFile.canRead()) {
                         System.err.println("Cannot read source file " + sourceFile.getAbsolutePath());
@@ -74,6 +79,8 @@ public class Main {
                     HatariWrapper.prepare(buildDirectory, TOS.tos206);
                     if(task.equals(TASK_COMPILE)) {
                         doCompileProgram(params);
+                    } else if(task.equals(TASK_FAST_RUN)) {
+                        doFastRunProgram(params);
                     } else {
                         doRunProgram(params);
                     }
@@ -99,8 +106,13 @@ public class Main {
         GfaBasicWrapper.setBuildDirectory(buildDirectory);
         HatariWrapper.prepare(buildDirectory, TOS.tos206);
 
+        File sourceFile = new File(argsAsMap.get(ARG_SOURCEFILE_PATH));
+        GfaBasicWrapper.runGfaProgram(sourceFile, createRunningInstance(), isSlimSource(argsAsMap));
+    }
+
+    private static HatariInstance createRunningInstance() {
         // TODO Configure instance based on commandline arguments
-        HatariInstance running = new HatariInstance("building",
+        return new HatariInstance("building",
                 true,
                 false,
                 true,
@@ -111,9 +123,23 @@ public class Main {
                 TOS.tos206,
                 ScreenMode.low,
                 Memory.mb1);
+    }
+
+    /**
+     * Runs the GFA BASIC program with the run-only interpreter, using a cached ".GFA" file
+     * if the source has not changed since the last run (unless "-nocache true" is given).
+     *
+     * @param argsAsMap
+     * @throws Exception
+     */
+    private static void doFastRunProgram(Map<String, String> argsAsMap) throws Exception {
+        File buildDirectory = new File(argsAsMap.get(ARG_BUILDDIR_PATH));
+        GfaBasicWrapper.setBuildDirectory(buildDirectory);
+        HatariWrapper.prepare(buildDirectory, TOS.tos206);
 
         File sourceFile = new File(argsAsMap.get(ARG_SOURCEFILE_PATH));
-        GfaBasicWrapper.runGfaProgram(sourceFile, running);
+        boolean refreshCache = Boolean.parseBoolean(argsAsMap.get(ARG_NOCACHE));
+        GfaBasicWrapper.runGfaProgramFast(sourceFile, createRunningInstance(), isSlimSource(argsAsMap), refreshCache);
     }
 
     /**
@@ -128,7 +154,33 @@ public class Main {
         HatariWrapper.prepare(buildDirectory, TOS.tos206);
 
         File sourceFile = new File(argsAsMap.get(ARG_SOURCEFILE_PATH));
-        GfaBasicWrapper.compileGfaProgram(sourceFile);
+        GfaBasicWrapper.compileGfaProgram(sourceFile, isSlimSource(argsAsMap));
+    }
+
+    /**
+     * Checks if the source should be slimmed before it is merged in the GFA BASIC editor.
+     *
+     * @param argsAsMap
+     * @return True if "-slim true" was given.
+     */
+    private static boolean isSlimSource(Map<String, String> argsAsMap) {
+        return Boolean.parseBoolean(argsAsMap.get(ARG_SLIM));
+    }
+
+    /**
+     * Makes sure the given optional argument is either 'true' or 'false', otherwise
+     * prints an error and exits.
+     *
+     * @param argsAsMap
+     * @param key The argument key, e.g. "-slim".
+     */
+    private static void validateBooleanArgument(Map<String, String> argsAsMap, String key) {
+        String value = argsAsMap.get(key);
+        if(value != null && !(value.equals("true") || value.equals("false"))) {
+            System.err.println("ERROR: '" + key + "' argument '" + value + "' must be either 'true' or 'false'.");
+            printUsage();
+            System.exit(-1);
+        }
     }
 
     private static Map<String, String> getArgumentsAsMap(String ... args) {
@@ -149,7 +201,7 @@ public class Main {
     }
 
     private static void printUsage() {
-        System.out.println("Usage 1: java -jar gfabasic-wrapper-<version>.jar -task [compile|run] -d <build directory path> -s <source file path>");
+        System.out.println("Usage 1: java -jar gfabasic-wrapper-<version>.jar -task [compile|run|fastrun] -d <build directory path> -s <source file path> [-slim true] [-nocache true]");
         System.out.println("");
         System.out.println("Usage 2: java -jar gfabasic-wrapper-<version>.jar -gui");
         System.out.println("");
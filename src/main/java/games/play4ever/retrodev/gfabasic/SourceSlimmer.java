@@ -0,0 +1,277 @@
+package games.play4ever.retrodev.gfabasic;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reduces the size of an ASCII GFA BASIC source before it is copied into the build folder.
+ * The GFA BASIC editor parses a merged LST file at emulated speed, so every byte removed on the
+ * host side shortens the time until the program can be run or compiled. This class will
+ * <ul>
+ *     <li>remove empty lines and comment-only lines ("'" or "REM")</li>
+ *     <li>remove trailing comments ("'" or " !") outside of string literals</li>
+ *     <li>remove indentation and collapse whitespace outside of string literals</li>
+ *     <li>remove procedures and functions which are not referenced from any live code</li>
+ * </ul>
+ * Because line numbers reported by the GFA editor refer to the slimmed file, a line map is
+ * written next to the slimmed source, which maps each slimmed line back to its original line.
+ */
+public class SourceSlimmer {
+
+    /**
+     * Atari ST sources are not UTF-8; use a 1:1 byte mapping so that special characters survive.
+     */
+    private static final Charset CHARSET = StandardCharsets.ISO_8859_1;
+
+    private static final String CRLF = "\r\n";
+
+    /**
+     * Writes a slimmed copy of the given source into the target file, plus a line map file with
+     * the same base name and the extension ".MAP" (e.g. "SOURCE.MAP" for "SOURCE.LST"). Each line
+     * of the map file holds the slimmed line number followed by the original line number.
+     *
+     * @param lstSource  The original ASCII source file.
+     * @param targetFile The slimmed file to write.
+     */
+    public static void slimSource(File lstSource, File targetFile) {
+        try {
+            byte[] originalData = Files.readAllBytes(lstSource.toPath());
+            List<String> lines = Files.readAllLines(lstSource.toPath(), CHARSET);
+            List<String> slimmedLines = new ArrayList<>();
+            List<Integer> lineNumbers = new ArrayList<>();
+            for (int i = 0; i < lines.size(); i++) {
+                String slimmed = slimLine(lines.get(i));
+                if (!slimmed.isEmpty()) {
+                    slimmedLines.add(slimmed);
+                    lineNumbers.add(i + 1);
+                }
+            }
+            removeDeadBlocks(slimmedLines, lineNumbers);
+
+            StringBuilder content = new StringBuilder();
+            StringBuilder lineMap = new StringBuilder();
+            for (int i = 0; i < slimmedLines.size(); i++) {
+                content.append(slimmedLines.get(i)).append(CRLF);
+                lineMap.append(i + 1).append(' ').append(lineNumbers.get(i)).append(CRLF);
+            }
+            byte[] data = content.toString().getBytes(CHARSET);
+            try (FileOutputStream fout = new FileOutputStream(targetFile)) {
+                fout.write(data);
+            }
+            try (FileOutputStream fout = new FileOutputStream(getLineMapFile(targetFile))) {
+                fout.write(lineMap.toString().getBytes(CHARSET));
+            }
+
+            // Compare against what would be merged without slimming, i.e. with CRLF line endings
+            long originalLength = getCrlfLength(originalData);
+            long percent = originalLength == 0 ? 0 : 100 - (data.length * 100L / originalLength);
+            System.out.println(">> Slimmed source: " + originalLength + " -> " + data.length + " bytes ("
+                    + percent + "% smaller), " + lines.size() + " -> " + slimmedLines.size() + " lines");
+        } catch (Exception e) {
+            throw new RuntimeException(">> Failed to slim source file: " + lstSource.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Calculates the length the given source would have with all line endings converted
+     * to CR LF (and a line ending after the last line), as the GFA editor gets to see it.
+     *
+     * @param data The source file contents.
+     * @return The length in bytes with CR LF line endings.
+     */
+    static long getCrlfLength(byte[] data) {
+        long length = data.length;
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] == 0x0A && (i == 0 || data[i - 1] != 0x0D)) {
+                length++;
+            }
+        }
+        if (data.length > 0 && data[data.length - 1] != 0x0A) {
+            length += 2;
+        }
+        return length;
+    }
+
+    /**
+     * Returns the line map file which belongs to the given slimmed source file.
+     *
+     * @param slimmedFile The slimmed source file.
+     * @return The ".MAP" file in the same directory.
+     */
+    public static File getLineMapFile(File slimmedFile) {
+        String name = slimmedFile.getName();
+        int dot = name.lastIndexOf('.');
+        String baseName = dot > 0 ? name.substring(0, dot) : name;
+        return new File(slimmedFile.getParentFile(), baseName + ".MAP");
+    }
+
+    /**
+     * Strips comments and redundant whitespace from a single source line.
+     *
+     * @param line The original line.
+     * @return The slimmed line, or an empty string if nothing is left.
+     */
+    static String slimLine(String line) {
+        String trimmed = line.trim();
+        if (trimmed.isEmpty() || trimmed.startsWith("'")
+                || trimmed.equalsIgnoreCase("REM") || trimmed.regionMatches(true, 0, "REM ", 0, 4)) {
+            return "";
+        }
+        // Unquoted DATA items may contain significant spaces and comment characters
+        if (trimmed.regionMatches(true, 0, "DATA ", 0, 5)) {
+            return trimmed;
+        }
+        StringBuilder result = new StringBuilder(trimmed.length());
+        boolean inString = false;
+        for (int i = 0; i < trimmed.length(); i++) {
+            char c = trimmed.charAt(i);
+            if (c == '"') {
+                inString = !inString;
+            } else if (!inString) {
+                if (c == '\'' || (c == '!' && i > 0 && Character.isWhitespace(trimmed.charAt(i - 1)))) {
+                    break;
+                }
+                if (Character.isWhitespace(c)) {
+                    if (result.length() > 0 && result.charAt(result.length() - 1) != ' ') {
+                        result.append(' ');
+                    }
+                    continue;
+                }
+            }
+            result.append(c);
+        }
+        return result.toString().trim();
+    }
+
+    /**
+     * Removes all PROCEDURE and FUNCTION blocks which are not reachable from the main program.
+     * A block counts as referenced if its name appears as a word in any live code line, which
+     * covers "GOSUB", "@", "FN" and plain procedure calls alike.
+     *
+     * @param lines       The slimmed source lines (modified in place).
+     * @param lineNumbers The original line numbers (modified in place).
+     */
+    private static void removeDeadBlocks(List<String> lines, List<Integer> lineNumbers) {
+        // Maps each lower-case block name to its [start, end] line index range
+        Map<String, int[]> blocks = new HashMap<>();
+        List<Integer> mainProgram = new ArrayList<>();
+        for (int i = 0; i < lines.size(); i++) {
+            String name = getBlockName(lines.get(i));
+            if (name == null) {
+                mainProgram.add(i);
+                continue;
+            }
+            String endKeyword = stripFoldMarker(lines.get(i)).regionMatches(true, 0, "PROCEDURE", 0, 9) ? "RETURN" : "ENDFUNC";
+            int end = i;
+            while (end < lines.size() - 1 && !lines.get(end).equalsIgnoreCase(endKeyword)) {
+                end++;
+            }
+            if (blocks.containsKey(name)) {
+                // Duplicate definitions are an error in GFA BASIC; leave the source untouched
+                return;
+            }
+            blocks.put(name, new int[]{i, end});
+            i = end;
+        }
+
+        Set<String> liveBlocks = new HashSet<>();
+        LinkedList<Integer> linesToScan = new LinkedList<>(mainProgram);
+        while (!linesToScan.isEmpty()) {
+            for (String word : getWords(lines.get(linesToScan.removeFirst()))) {
+                int[] range = blocks.get(word);
+                if (range != null && liveBlocks.add(word)) {
+                    // Skip the header line, it only holds the block's own name and parameters
+                    for (int i = range[0] + 1; i <= range[1]; i++) {
+                        linesToScan.add(i);
+                    }
+                }
+            }
+        }
+
+        List<String> keptLines = new ArrayList<>();
+        List<Integer> keptLineNumbers = new ArrayList<>();
+        Set<Integer> deadLines = new HashSet<>();
+        for (Map.Entry<String, int[]> block : blocks.entrySet()) {
+            if (!liveBlocks.contains(block.getKey())) {
+                System.out.println(">> Remove unused block: " + block.getKey());
+                for (int i = block.getValue()[0]; i <= block.getValue()[1]; i++) {
+                    deadLines.add(i);
+                }
+            }
+        }
+        for (int i = 0; i < lines.size(); i++) {
+            if (!deadLines.contains(i)) {
+                keptLines.add(lines.get(i));
+                keptLineNumbers.add(lineNumbers.get(i));
+            }
+        }
+        lines.clear();
+        lines.addAll(keptLines);
+        lineNumbers.clear();
+        lineNumbers.addAll(keptLineNumbers);
+    }
+
+    /**
+     * @param line The slimmed source line.
+     * @return The lower-case name if the line starts a PROCEDURE or FUNCTION block, otherwise null.
+     */
+    private static String getBlockName(String line) {
+        line = stripFoldMarker(line);
+        String header;
+        if (line.regionMatches(true, 0, "PROCEDURE ", 0, 10)) {
+            header = line.substring(10);
+        } else if (line.regionMatches(true, 0, "FUNCTION ", 0, 9)) {
+            header = line.substring(9);
+        } else {
+            return null;
+        }
+        List<String> words = getWords(header);
+        return words.isEmpty() ? null : words.get(0);
+    }
+
+    /**
+     * The GFA BASIC editor saves the header of a folded block with a leading "&gt;" marker,
+     * e.g. "&gt; PROCEDURE name".
+     *
+     * @param line The slimmed source line.
+     * @return The line without the fold marker.
+     */
+    private static String stripFoldMarker(String line) {
+        return line.startsWith(">") ? line.substring(1).trim() : line;
+    }
+
+    /**
+     * Splits a line into lower-case identifier words, ignoring the contents of string literals.
+     *
+     * @param line The slimmed source line.
+     * @return The words in the line.
+     */
+    private static List<String> getWords(String line) {
+        List<String> words = new ArrayList<>();
+        StringBuilder word = new StringBuilder();
+        boolean inString = false;
+        for (int i = 0; i <= line.length(); i++) {
+            char c = i < line.length() ? line.charAt(i) : ' ';
+            if (c == '"') {
+                inString = !inString;
+            }
+            if (!inString && (Character.isLetterOrDigit(c) || c == '_' || c == '.')) {
+                word.append(Character.toLowerCase(c));
+            } else if (word.length() > 0) {
+                words.add(word.toString());
+                word.setLength(0);
+            }
+        }
+        return words;
+    }
+}
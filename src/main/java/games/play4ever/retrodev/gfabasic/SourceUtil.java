@@ -3,6 +3,9 @@ package games.play4ever.retrodev.gfabasic;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
 
 /**
  * Source-file related utility code.
@@ -11,6 +14,15 @@ import java.io.FileOutputStream;
  */
 public class SourceUtil {
 
+    /**
+     * Tokenized GFA BASIC 3 files start with two version bytes followed by this text.
+     */
+    private static final String GFA_MAGIC = "GFA-BASIC3";
+    /**
+     * Length of the fixed part of a GFA file header (version bytes, magic, section table).
+     */
+    private static final int GFA_HEADER_LENGTH = 2 + GFA_MAGIC.length() + 4 * 39;
+
     /**
      * Make sure the line endings in the given file are all 2-bytes / 0x0D 0x0A / CR LF.
      * Otherwise, the GFA Editor will refuse to read the file.
@@ -47,4 +59,55 @@ public class SourceUtil {
             throw new RuntimeException(">> Failed to process file: " + file.getAbsolutePath(), e);
         }
     }
+
+    /**
+     * Calculates the SHA-256 hash of the contents of the given file, e.g. to detect if a
+     * source has changed since it was last converted.
+     *
+     * @param file
+     * @return The hash as a lower-case hex string.
+     */
+    public static String getSourceHash(File file) {
+        try {
+            return getHash(Files.readAllBytes(file.toPath()));
+        } catch (Exception e) {
+            throw new RuntimeException(">> Failed to hash file: " + file.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Calculates the SHA-256 hash of the given data.
+     *
+     * @param data
+     * @return The hash as a lower-case hex string.
+     */
+    public static String getHash(byte[] data) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(data);
+            StringBuilder hex = new StringBuilder();
+            for (byte value : hash) {
+                hex.append(String.format("%02x", value));
+            }
+            return hex.toString();
+        } catch (Exception e) {
+            throw new RuntimeException(">> Failed to calculate hash", e);
+        }
+    }
+
+    /**
+     * Checks if the given file looks like a complete tokenized GFA BASIC 3 source, i.e. it
+     * starts with the "GFA-BASIC3" header and has content beyond it.
+     *
+     * @param file
+     * @return True if the file is a GFA BASIC 3 source file.
+     */
+    public static boolean isGfaFile(File file) {
+        try {
+            byte[] data = Files.readAllBytes(file.toPath());
+            return data.length > GFA_HEADER_LENGTH
+                    && new String(data, 2, GFA_MAGIC.length(), StandardCharsets.ISO_8859_1).equals(GFA_MAGIC);
+        } catch (Exception e) {
+            return false;
+        }
+    }
 }
@@ -0,0 +1,97 @@
+package games.play4ever.retrodev.gfabasic;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class SourceSlimmerTest {
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    public void removesCommentsWhitespaceAndUnusedBlocks() throws Exception {
+        List<String> slimmed = slim(
+                "' banner",
+                "  PRINT \"a  'b\"   ' trailing",
+                "  flag!=TRUE ! note",
+                "GOSUB used",
+                "DATA  1, 2 'x",
+                "PROCEDURE used",
+                "  @f(1)",
+                "RETURN",
+                "PROCEDURE dead",
+                "  PRINT 1",
+                "RETURN",
+                "FUNCTION f(x)",
+                "  RETURN x",
+                "ENDFUNC");
+
+        assertEquals(Arrays.asList(
+                "PRINT \"a  'b\"",
+                "flag!=TRUE",
+                "GOSUB used",
+                "DATA  1, 2 'x",
+                "PROCEDURE used",
+                "@f(1)",
+                "RETURN",
+                "FUNCTION f(x)",
+                "RETURN x",
+                "ENDFUNC"), slimmed);
+        assertEquals(Arrays.asList("1 2", "2 3", "3 4", "4 5", "5 6", "6 7", "7 8", "8 12", "9 13", "10 14"),
+                readLines(new File(tempDir, "SOURCE.MAP")));
+    }
+
+    @Test
+    public void removesUnusedFoldedBlocks() throws Exception {
+        List<String> slimmed = slim(
+                "GOSUB used",
+                "> PROCEDURE used",
+                "  PRINT 1",
+                "RETURN",
+                "> PROCEDURE folded",
+                "  GOSUB helper",
+                "RETURN",
+                "> FUNCTION helper",
+                "  RETURN 2",
+                "ENDFUNC");
+
+        assertEquals(Arrays.asList(
+                "GOSUB used",
+                "> PROCEDURE used",
+                "PRINT 1",
+                "RETURN"), slimmed);
+    }
+
+    @Test
+    public void measuresSizeAgainstCrlfSource() throws Exception {
+        byte[] lfSource = "PRINT 1\nPRINT 2\n".getBytes(StandardCharsets.ISO_8859_1);
+        File source = new File(tempDir, "ORIGINAL.LST");
+        Files.write(source.toPath(), lfSource);
+        File target = new File(tempDir, "SOURCE.LST");
+        SourceSlimmer.slimSource(source, target);
+
+        // Nothing to slim, so the slimmed file is exactly the CRLF-converted original
+        assertEquals(target.length(), SourceSlimmer.getCrlfLength(lfSource));
+        assertEquals(18L, SourceSlimmer.getCrlfLength("PRINT 1\r\nPRINT 2".getBytes(StandardCharsets.ISO_8859_1)));
+    }
+
+    private List<String> slim(String... lines) throws Exception {
+        File source = new File(tempDir, "ORIGINAL.LST");
+        Files.write(source.toPath(), Arrays.asList(lines), StandardCharsets.ISO_8859_1);
+        File target = new File(tempDir, "SOURCE.LST");
+        SourceSlimmer.slimSource(source, target);
+        return readLines(target);
+    }
+
+    private List<String> readLines(File file) throws Exception {
+        return Files.readAllLines(file.toPath(), StandardCharsets.ISO_8859_1);
+    }
+}